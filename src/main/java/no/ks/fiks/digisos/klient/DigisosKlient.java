@@ -2,19 +2,24 @@ package no.ks.fiks.digisos.klient;
 
 import no.ks.fiks.digisos.klient.model.DokumentInfo;
 import no.ks.fiks.digisos.klient.model.FilOpplasting;
+import no.ks.fiks.digisos.klient.model.OppvarmingResultat;
+import no.ks.fiks.digisos.klient.model.ReaktivFilOpplasting;
 import no.ks.fiks.streaming.klient.KlientResponse;
 import no.ks.kryptering.CMSKrypteringImpl;
 import no.ks.kryptering.CMSStreamKryptering;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.security.Provider;
 import java.security.Security;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
@@ -24,17 +29,22 @@ import static java.util.Objects.requireNonNull;
 public class DigisosKlient implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(DigisosKlient.class);
+    private static final int ANTALL_OPPVARMINGSKRYPTERINGER = 3;
+    private static final int OPPVARMINGSDATA_STORRELSE = 64 * 1024;
 
     private final Provider provider = Security.getProvider("BC");
-    private X509Certificate publicCertificate = null;
+    private volatile X509Certificate publicCertificate = null;
     private final CMSStreamKryptering kryptering;
     private final long timeoutSeconds;
     private final DigisosApi digisosApi;
     private final ExecutorService executor;
+    private final ExecutorService opplastingExecutor;
+    private final Set<CompletableFuture<?>> reaktiveOpplastinger = ConcurrentHashMap.newKeySet();
 
-    private DigisosKlient(DigisosApi digisosApi, ExecutorService executor, CMSStreamKryptering kryptering, long timeoutSeconds) {
+    private DigisosKlient(DigisosApi digisosApi, ExecutorService executor, ExecutorService opplastingExecutor, CMSStreamKryptering kryptering, long timeoutSeconds) {
         this.digisosApi = requireNonNull(digisosApi);
         this.executor = requireNonNull(executor);
+        this.opplastingExecutor = requireNonNull(opplastingExecutor);
         this.kryptering = requireNonNull(kryptering);
         this.timeoutSeconds = timeoutSeconds;
     }
@@ -43,25 +53,111 @@ public class DigisosKlient implements AutoCloseable {
         return doKrypterOgLastOppFiler(requireNonNull(dokumenter), requireNonNull(fiksOrgId), requireNonNull(digisosId));
     }
 
+    /**
+     * Krypterer og laster opp filer der innholdet leveres av en {@link java.util.concurrent.Flow.Publisher}.
+     * Det etterspørres kun ett nytt element fra publisheren så snart krypteringen har lest forrige,
+     * slik at produsenten aldri kommer lenger enn krypteringen og opplastingen.
+     * Opplastingen kjøres på en egen trådpool med {@code antallOpplastingThreads} tråder; kall utover dette
+     * venter i kø til en tråd blir ledig.
+     * Kanselleres returnert future, kanselleres abonnementene på publisherne og opplastingen avbrytes.
+     * Ved {@link #close()} kanselleres alle opplastinger som kjører eller venter i kø, og etter close()
+     * returneres en future som allerede har feilet.
+     *
+     * @return future som fullføres når opplastingen er ferdig
+     */
+    public CompletableFuture<KlientResponse<List<DokumentInfo>>> krypterOgLastOppReaktiveFiler(List<ReaktivFilOpplasting> dokumenter, UUID fiksOrgId, UUID digisosId) {
+        return doKrypterOgLastOppReaktiveFiler(requireNonNull(dokumenter), requireNonNull(fiksOrgId), requireNonNull(digisosId));
+    }
+
+    private CompletableFuture<KlientResponse<List<DokumentInfo>>> doKrypterOgLastOppReaktiveFiler(List<ReaktivFilOpplasting> dokumenter, UUID fiksOrgId, UUID digisosId) {
+        final List<PublisherInputStream> streams = dokumenter.stream()
+                .map(dokument -> new PublisherInputStream(dokument.data(), timeoutSeconds))
+                .collect(Collectors.toList());
+        final List<FilOpplasting> filer = new ArrayList<>(dokumenter.size());
+        for (int i = 0; i < dokumenter.size(); i++) {
+            filer.add(new FilOpplasting(dokumenter.get(i).metadata(), streams.get(i)));
+        }
+
+        final CompletableFuture<KlientResponse<List<DokumentInfo>>> resultat = new CompletableFuture<>();
+        reaktiveOpplastinger.add(resultat);
+        final Future<?> opplasting;
+        try {
+            opplasting = opplastingExecutor.submit(() -> {
+                try {
+                    resultat.complete(doKrypterOgLastOppFiler(filer, fiksOrgId, digisosId));
+                } catch (Exception e) {
+                    resultat.completeExceptionally(e);
+                } finally {
+                    streams.forEach(PublisherInputStream::close);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reaktiveOpplastinger.remove(resultat);
+            streams.forEach(PublisherInputStream::close);
+            return CompletableFuture.failedFuture(new IllegalStateException("DigisosKlient er lukket", e));
+        }
+        resultat.whenComplete((response, e) -> {
+            reaktiveOpplastinger.remove(resultat);
+            if (resultat.isCancelled()) {
+                log.debug("Opplasting kansellert, kansellerer abonnement på publishere");
+                streams.forEach(PublisherInputStream::close);
+                opplasting.cancel(true);
+            }
+        });
+        return resultat;
+    }
+
     private KlientResponse<List<DokumentInfo>> doKrypterOgLastOppFiler(List<FilOpplasting> dokumenter, UUID fiksOrgId, UUID digisosId) {
         final List<CompletableFuture<Void>> krypteringFutureList = Collections.synchronizedList(new ArrayList<>(dokumenter.size()));
+        final List<InputStream> kryptertStreams = Collections.synchronizedList(new ArrayList<>(dokumenter.size()));
         try {
             KlientResponse<List<DokumentInfo>> opplastetFiler = digisosApi.lastOppFiler(dokumenter.stream()
-                    .map(dokument -> new FilOpplasting(dokument.metadata(), krypter(dokument.data(), krypteringFutureList)))
+                    .map(dokument -> new FilOpplasting(dokument.metadata(), krypter(dokument.data(), krypteringFutureList, kryptertStreams)))
                     .collect(Collectors.toList()), fiksOrgId, digisosId);
 
-
             waitForFutures(krypteringFutureList);
             log.info("{} dokumenter lagt til digisosId {} på fiksOrg {}", dokumenter.size(), digisosId, fiksOrgId);
             return opplastetFiler;
         } finally {
             krypteringFutureList.stream().filter(f -> !f.isDone() && !f.isCancelled()).forEach(future -> future.cancel(true));
+            // Lukker lesesiden av pipene, slik at kryptering som fortsatt skriver feiler i stedet for å blokkere
+            kryptertStreams.forEach(this::lukk);
         }
     }
 
+    /**
+     * Henter og cacher dokumentlagerets sertifikat og kjører noen syntetiske krypteringer i minnet, slik at
+     * første opplasting etter oppstart ikke betaler for sertifikathenting, oppkobling mot Fiks-Digisos
+     * og lasting/JIT-kompilering av krypteringskoden.
+     * Oppkoblingen mot Fiks-Digisos etableres gjennom {@link DigisosApi} når sertifikatet hentes.
+     *
+     * @return tidsbruk for hvert steg i oppvarmingen
+     */
+    public OppvarmingResultat warmUp() {
+        long start = System.nanoTime();
+        publicCertificate = fetchDokumentlagerPublicCertificate();
+        Duration hentingAvSertifikat = Duration.ofNanos(System.nanoTime() - start);
+
+        byte[] data = new byte[OPPVARMINGSDATA_STORRELSE];
+        new Random().nextBytes(data);
+        start = System.nanoTime();
+        for (int i = 0; i < ANTALL_OPPVARMINGSKRYPTERINGER; i++) {
+            kryptering.krypterData(OutputStream.nullOutputStream(), new ByteArrayInputStream(data), publicCertificate, provider);
+        }
+        Duration krypteringTid = Duration.ofNanos(System.nanoTime() - start);
+
+        OppvarmingResultat resultat = new OppvarmingResultat(hentingAvSertifikat, krypteringTid, ANTALL_OPPVARMINGSKRYPTERINGER);
+        log.info("Oppvarming fullført: henting av sertifikat {} ms, {} krypteringer {} ms",
+                hentingAvSertifikat.toMillis(), ANTALL_OPPVARMINGSKRYPTERINGER, krypteringTid.toMillis());
+        return resultat;
+    }
+
     @Override
     public void close() {
         executor.shutdownNow();
+        opplastingExecutor.shutdownNow();
+        // Opplastinger som lå i kø blir aldri kjørt, og de som kjører er avbrutt
+        reaktiveOpplastinger.forEach(opplasting -> opplasting.cancel(true));
     }
 
     private void waitForFutures(List<CompletableFuture<Void>> krypteringFutureList) {
@@ -75,17 +171,27 @@ public class DigisosKlient implements AutoCloseable {
         }
     }
 
-    private InputStream krypter(InputStream dokumentStream, List<CompletableFuture<Void>> krypteringFutureList) {
-        return doKrypter(requireNonNull(dokumentStream), krypteringFutureList);
+    private void lukk(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            log.warn("Failed closing encrypted InputStream", e);
+        }
+    }
+
+    private InputStream krypter(InputStream dokumentStream, List<CompletableFuture<Void>> krypteringFutureList, List<InputStream> kryptertStreams) {
+        return doKrypter(requireNonNull(dokumentStream), krypteringFutureList, kryptertStreams);
     }
 
-    private InputStream doKrypter(InputStream dokumentStream, List<CompletableFuture<Void>> krypteringFutureList) {
+    private InputStream doKrypter(InputStream dokumentStream, List<CompletableFuture<Void>> krypteringFutureList, List<InputStream> kryptertStreams) {
 
         if (publicCertificate == null) {
             publicCertificate = fetchDokumentlagerPublicCertificate();
         }
 
         PipedInputStream pipedInputStream = new PipedInputStream();
+        KryptertInputStream kryptertInputStream = new KryptertInputStream(pipedInputStream);
+        kryptertStreams.add(kryptertInputStream);
         try {
             PipedOutputStream pipedOutputStream = new PipedOutputStream(pipedInputStream);
             CompletableFuture<Void> krypteringFuture = CompletableFuture.runAsync(() -> {
@@ -95,6 +201,7 @@ public class DigisosKlient implements AutoCloseable {
                     log.debug("Encryption completed");
                 } catch (Exception e) {
                     log.error("Encryption failed, setting exception on encrypted InputStream", e);
+                    kryptertInputStream.feilet(e);
                     throw new IllegalStateException("An error occurred during encryption", e);
                 } finally {
                     try {
@@ -112,7 +219,7 @@ public class DigisosKlient implements AutoCloseable {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return pipedInputStream;
+        return kryptertInputStream;
     }
 
     private X509Certificate fetchDokumentlagerPublicCertificate() {
@@ -129,6 +236,7 @@ public class DigisosKlient implements AutoCloseable {
         private CMSStreamKryptering kryptering;
         private long timeoutSeconds = 60 * 5;
         private int antallThreads = 5;
+        private int antallOpplastingThreads = 5;
 
         public DigisosKlientBuilder digisosApi(DigisosApi digisosApi) {
             this.digisosApi = digisosApi;
@@ -145,6 +253,11 @@ public class DigisosKlient implements AutoCloseable {
             return this;
         }
 
+        public DigisosKlientBuilder antallOpplastingThreads(int antallOpplastingThreads) {
+            this.antallOpplastingThreads = antallOpplastingThreads;
+            return this;
+        }
+
         public DigisosKlientBuilder timeoutSeconds(long timeoutSeconds) {
             this.timeoutSeconds = timeoutSeconds;
             return this;
@@ -154,13 +267,16 @@ public class DigisosKlient implements AutoCloseable {
             if (antallThreads <= 0) {
                 throw new IllegalArgumentException("Må ha minumum 1 tråd for kryptering");
             }
+            if (antallOpplastingThreads <= 0) {
+                throw new IllegalArgumentException("Må ha minumum 1 tråd for opplasting");
+            }
             if (timeoutSeconds <= 0) {
                 throw new IllegalArgumentException("Må ha en timeout på minimum ett sekund");
             }
             if (kryptering == null) {
                 kryptering = new CMSKrypteringImpl();
             }
-            return new DigisosKlient(digisosApi, Executors.newFixedThreadPool(antallThreads), kryptering, timeoutSeconds);
+            return new DigisosKlient(digisosApi, Executors.newFixedThreadPool(antallThreads), Executors.newFixedThreadPool(antallOpplastingThreads), kryptering, timeoutSeconds);
         }
 
     }
@@ -0,0 +1,49 @@
+package no.ks.fiks.digisos.klient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Den krypterte strømmen som sendes til opplasting.
+ * Feiler krypteringen, kastes feilen ved neste lesing i stedet for at leseren ser en ordinær slutt på strømmen,
+ * slik at opplastingen avbrytes og et avkuttet dokument ikke blir lagret.
+ */
+class KryptertInputStream extends FilterInputStream {
+
+    private volatile Throwable feil;
+
+    KryptertInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Må kalles før krypteringens OutputStream lukkes, slik at leseren ser feilen og ikke slutten på strømmen.
+     */
+    void feilet(Throwable feil) {
+        this.feil = feil;
+    }
+
+    @Override
+    public int read() throws IOException {
+        sjekkFeil();
+        int b = super.read();
+        sjekkFeil();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        sjekkFeil();
+        int n = super.read(b, off, len);
+        sjekkFeil();
+        return n;
+    }
+
+    private void sjekkFeil() throws IOException {
+        Throwable t = feil;
+        if (t != null) {
+            throw new IOException("Kryptering feilet", t);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package no.ks.fiks.digisos.klient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Leser en {@link Flow.Publisher} som en blokkerende {@link InputStream}.
+ * Publisheren abonneres på ved første lesing, og det etterspørres kun ett nytt element når forrige er lest opp,
+ * slik at produsenten aldri kommer lenger foran enn det som leses.
+ * Dersom publisheren ikke leverer noe innen timeouten, kanselleres abonnementet og lesingen feiler.
+ */
+class PublisherInputStream extends InputStream implements Flow.Subscriber<ByteBuffer> {
+
+    private static final Logger log = LoggerFactory.getLogger(PublisherInputStream.class);
+    private static final Object COMPLETE = new Object();
+    private static final Object CLOSED = new Object();
+
+    private final Flow.Publisher<ByteBuffer> publisher;
+    private final long timeoutSeconds;
+    private final BlockingQueue<Object> signaler = new LinkedBlockingQueue<>();
+    private volatile Flow.Subscription subscription;
+    private ByteBuffer current;
+    private boolean subscribed = false;
+    private volatile boolean done = false;
+    private volatile boolean closed = false;
+
+    PublisherInputStream(Flow.Publisher<ByteBuffer> publisher, long timeoutSeconds) {
+        this.publisher = requireNonNull(publisher);
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nesteBuffer()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    private boolean nesteBuffer() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            if (done) {
+                return false;
+            }
+            if (closed) {
+                throw new IOException("Stream er lukket");
+            }
+            if (!subscribed) {
+                subscribed = true;
+                publisher.subscribe(this);
+            } else {
+                subscription.request(1);
+            }
+            Object signal;
+            try {
+                signal = signaler.poll(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new InterruptedIOException("Avbrutt under venting på data fra publisher");
+            }
+            if (signal == null) {
+                closed = true;
+                cancel();
+                throw new InterruptedIOException(String.format("Fikk ikke data fra publisher innen %d sekunder", timeoutSeconds));
+            } else if (signal == CLOSED) {
+                throw new IOException("Stream er lukket");
+            } else if (signal == COMPLETE) {
+                done = true;
+            } else if (signal instanceof Throwable t) {
+                done = true;
+                throw new IOException("Publisher feilet", t);
+            } else {
+                current = (ByteBuffer) signal;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (!done) {
+            cancel();
+            signaler.add(CLOSED);
+        }
+    }
+
+    private void cancel() {
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        requireNonNull(subscription);
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        if (closed) {
+            subscription.cancel();
+        } else {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        signaler.add(requireNonNull(item));
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        log.debug("Publisher signaliserte feil", throwable);
+        signaler.add(requireNonNull(throwable));
+    }
+
+    @Override
+    public void onComplete() {
+        signaler.add(COMPLETE);
+    }
+}
@@ -0,0 +1,10 @@
+package no.ks.fiks.digisos.klient.model;
+
+import java.time.Duration;
+
+public record OppvarmingResultat(
+        Duration hentingAvSertifikat,
+        Duration kryptering,
+        int antallKrypteringer
+) {
+}
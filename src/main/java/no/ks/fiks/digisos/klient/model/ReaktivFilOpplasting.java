@@ -0,0 +1,10 @@
+package no.ks.fiks.digisos.klient.model;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+public record ReaktivFilOpplasting(
+        FilMetadata metadata,
+        Flow.Publisher<ByteBuffer> data
+) {
+}
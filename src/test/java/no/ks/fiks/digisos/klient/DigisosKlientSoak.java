@@ -0,0 +1,563 @@
+package no.ks.fiks.digisos.klient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import no.ks.fiks.digisos.klient.model.FilMetadata;
+import no.ks.fiks.digisos.klient.model.FilOpplasting;
+import no.ks.fiks.digisos.klient.model.ReaktivFilOpplasting;
+import no.ks.fiks.streaming.klient.StreamingKlient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Soak-test som kjører mange samtidige {@link DigisosKlient}-instanser og kallere mot en lokal stand-in for
+ * Fiks-Digisos over lengre tid, og rapporterer gjennomstrømning, latens, timeouts, tråder og heap.
+ * Startes manuelt, og avslutter med exit-kode 1 dersom det blir funnet lekkasjer eller hengende tråder:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=no.ks.fiks.digisos.klient.DigisosKlientSoak -Dsoak.varighetSekunder=600
+ * </pre>
+ * Konfigureres med system properties: {@code soak.klienter}, {@code soak.kallere}, {@code soak.varighetSekunder},
+ * {@code soak.rapportIntervallSekunder}, {@code soak.timeoutSeconds}, {@code soak.antallThreads},
+ * {@code soak.antallOpplastingThreads}, {@code soak.maksFilerPerKall}, {@code soak.reaktivAndel} (andel kall som går
+ * gjennom {@link DigisosKlient#krypterOgLastOppReaktiveFiler}), {@code soak.etterslepSekunder} (hvor lenge
+ * krypteringsoppgaver får på seg til å bli ferdige etter at kallerne er stoppet) og {@code soak.maksHeapVekstMb}.
+ * <p>
+ * Stand-in serveren kan injisere feil slik at timeouts, utsultede executorer og opprydding ved feil blir kjørt:
+ * {@code soak.svarForsinkelseMillis} forsinker alle svar, {@code soak.stoppSannsynlighet} lar serveren slutte å lese
+ * midt i bodyen i {@code soak.stoppSekunder}, {@code soak.bruddSannsynlighet} bryter forbindelsen midt i bodyen og
+ * {@code soak.feilstatusSannsynlighet} svarer med 500. Sannsynlighetene oppgis mellom 0 og 1.
+ */
+public class DigisosKlientSoak {
+
+    private static final Logger log = LoggerFactory.getLogger(DigisosKlientSoak.class);
+
+    private static final int[] FIL_STORRELSER = {1024, 64 * 1024, 512 * 1024, 4 * 1024 * 1024};
+    private static final int[] FIL_VEKTER = {40, 30, 20, 10};
+    private static final int CHUNK_STORRELSE = 16 * 1024;
+
+    private final int antallKlienter;
+    private final int antallKallere;
+    private final long varighetSekunder;
+    private final long rapportIntervallSekunder;
+    private final long timeoutSeconds;
+    private final int antallThreads;
+    private final int antallOpplastingThreads;
+    private final int maksFilerPerKall;
+    private final double reaktivAndel;
+    private final long etterslepSekunder;
+    private final long maksHeapVekstMb;
+    private final long svarForsinkelseMillis;
+    private final double stoppSannsynlighet;
+    private final long stoppSekunder;
+    private final double bruddSannsynlighet;
+    private final double feilstatusSannsynlighet;
+
+    private final byte[] data = new byte[FIL_STORRELSER[FIL_STORRELSER.length - 1]];
+    private final LongAdder vellykkede = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder feil = new LongAdder();
+    private final LongAdder reaktiveKall = new LongAdder();
+    private final LongAdder bytesSendt = new LongAdder();
+    private final LongAdder injiserteStopp = new LongAdder();
+    private final LongAdder injiserteBrudd = new LongAdder();
+    private final LongAdder injiserteFeilstatuser = new LongAdder();
+    private final AtomicLong kallTeller = new AtomicLong();
+    private final Map<Long, Long> pagaaendeKall = new ConcurrentHashMap<>();
+    private final long maksLatensMillis;
+    private final LatensHistogram vellykketLatens;
+    private final LatensHistogram feiletLatens;
+    private final AtomicReference<LatensHistogram> intervallLatens;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public DigisosKlientSoak() {
+        this(System.getProperties());
+    }
+
+    public DigisosKlientSoak(Properties konfigurasjon) {
+        antallKlienter = (int) lesLong(konfigurasjon, "soak.klienter", 4);
+        antallKallere = (int) lesLong(konfigurasjon, "soak.kallere", 16);
+        varighetSekunder = lesLong(konfigurasjon, "soak.varighetSekunder", 60);
+        rapportIntervallSekunder = lesLong(konfigurasjon, "soak.rapportIntervallSekunder", 10);
+        timeoutSeconds = lesLong(konfigurasjon, "soak.timeoutSeconds", 30);
+        antallThreads = (int) lesLong(konfigurasjon, "soak.antallThreads", 5);
+        antallOpplastingThreads = (int) lesLong(konfigurasjon, "soak.antallOpplastingThreads", 5);
+        maksFilerPerKall = (int) lesLong(konfigurasjon, "soak.maksFilerPerKall", 3);
+        reaktivAndel = lesDouble(konfigurasjon, "soak.reaktivAndel", 0.25);
+        etterslepSekunder = lesLong(konfigurasjon, "soak.etterslepSekunder", 5);
+        maksHeapVekstMb = lesLong(konfigurasjon, "soak.maksHeapVekstMb", 64);
+        svarForsinkelseMillis = lesLong(konfigurasjon, "soak.svarForsinkelseMillis", 0);
+        stoppSannsynlighet = lesDouble(konfigurasjon, "soak.stoppSannsynlighet", 0);
+        stoppSekunder = lesLong(konfigurasjon, "soak.stoppSekunder", timeoutSeconds * 2);
+        bruddSannsynlighet = lesDouble(konfigurasjon, "soak.bruddSannsynlighet", 0);
+        feilstatusSannsynlighet = lesDouble(konfigurasjon, "soak.feilstatusSannsynlighet", 0);
+
+        new Random().nextBytes(data);
+        maksLatensMillis = TimeUnit.SECONDS.toMillis(Math.max(timeoutSeconds, stoppSekunder) * 3);
+        vellykketLatens = new LatensHistogram(maksLatensMillis);
+        feiletLatens = new LatensHistogram(maksLatensMillis);
+        intervallLatens = new AtomicReference<>(new LatensHistogram(maksLatensMillis));
+    }
+
+    public static void main(String[] args) throws Exception {
+        SoakResultat resultat = new DigisosKlientSoak().kjor();
+        System.exit(resultat.problemer().isEmpty() ? 0 : 1);
+    }
+
+    SoakResultat kjor() throws Exception {
+        long heapFoerStart = heapEtterGc();
+
+        ExecutorService serverExecutor = Executors.newCachedThreadPool(traadFabrikk("soak-server"));
+        HttpServer server = startStandInServer(serverExecutor);
+        String baseUrl = "http://localhost:" + server.getAddress().getPort();
+        StreamingKlient streamingKlient = new StreamingKlient(request -> {});
+        DigisosApi digisosApi = new DigisosApiImpl(streamingKlient, baseUrl);
+
+        // Tråder som finnes etter at StreamingKlient har koblet opp regnes ikke som lekkasjer fra DigisosKlient
+        digisosApi.getDokumentlagerPublicKeyX509Certificate();
+        Set<Thread> traaderFoerStart = new HashSet<>(Thread.getAllStackTraces().keySet());
+
+        List<DigisosKlient> klienter = new ArrayList<>(antallKlienter);
+        for (int i = 0; i < antallKlienter; i++) {
+            klienter.add(DigisosKlient.builder()
+                    .digisosApi(digisosApi)
+                    .antallThreads(antallThreads)
+                    .antallOpplastingThreads(antallOpplastingThreads)
+                    .timeoutSeconds(timeoutSeconds)
+                    .build());
+        }
+
+        log.info("Starter soak: {} klienter, {} kallere, {} sekunder mot {}, andel reaktive kall {}",
+                antallKlienter, antallKallere, varighetSekunder, baseUrl, reaktivAndel);
+        log.info("Feilinjisering: forsinkelse {} ms, stopp {} ({} s), brudd {}, feilstatus {}",
+                svarForsinkelseMillis, stoppSannsynlighet, stoppSekunder, bruddSannsynlighet, feilstatusSannsynlighet);
+        long start = System.nanoTime();
+        long slutt = start + TimeUnit.SECONDS.toNanos(varighetSekunder);
+
+        ScheduledExecutorService rapportering = Executors.newSingleThreadScheduledExecutor(traadFabrikk("soak-rapport"));
+        rapportering.scheduleAtFixedRate(() -> rapporterIntervall(start), rapportIntervallSekunder, rapportIntervallSekunder, TimeUnit.SECONDS);
+
+        ExecutorService kallere = Executors.newFixedThreadPool(antallKallere, traadFabrikk("soak-kaller"));
+        List<Future<?>> kallerFutures = new ArrayList<>(antallKallere);
+        for (int i = 0; i < antallKallere; i++) {
+            kallerFutures.add(kallere.submit(() -> kaller(klienter, slutt)));
+        }
+        kallere.shutdown();
+        if (!kallere.awaitTermination(varighetSekunder + timeoutSeconds * 2, TimeUnit.SECONDS)) {
+            log.warn("Kallere ble ikke ferdige innen fristen");
+        }
+        rapportering.shutdownNow();
+        double sekunder = (System.nanoTime() - start) / 1e9;
+
+        int pagaaendeVedStopp = pagaaendeKall.size();
+        long lengstPagaaendeMillis = pagaaendeKall.values().stream()
+                .mapToLong(kallStart -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - kallStart))
+                .max().orElse(0);
+        long kallerFeil = kallerFutures.stream().filter(this::kallerFeilet).count();
+
+        List<String> hengendeTraader = ventPaaKrypteringsoppgaver(traaderFoerStart);
+
+        kallere.shutdownNow();
+        klienter.forEach(DigisosKlient::close);
+        if (streamingKlient instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+
+        List<String> lekkedeTraader = ventPaaNyeTraader(traaderFoerStart);
+        long heapVekstBytes = heapEtterGc() - heapFoerStart;
+
+        log.info("Totalt: {} vellykkede ({} reaktive kall), {} timeouts, {} feil, {} kall/s, {} MB/s",
+                vellykkede.sum(), reaktiveKall.sum(), timeouts.sum(), feil.sum(),
+                String.format("%.1f", vellykkede.sum() / sekunder),
+                String.format("%.1f", bytesSendt.sum() / sekunder / (1024 * 1024)));
+        log.info("Latens vellykkede kall {}, feilede kall og timeouts {}", vellykketLatens.oppsummering(), feiletLatens.oppsummering());
+        log.info("Injiserte feil: {} stopp, {} brudd, {} feilstatuser", injiserteStopp.sum(), injiserteBrudd.sum(), injiserteFeilstatuser.sum());
+        log.info("Heap etter GC: {} MB før start, vekst {} MB etter close()", heapFoerStart / (1024 * 1024), heapVekstBytes / (1024 * 1024));
+
+        List<String> problemer = new ArrayList<>();
+        if (pagaaendeVedStopp > 0) {
+            problemer.add(String.format("%d kall pågikk fortsatt ved stopp, det lengste i %d ms", pagaaendeVedStopp, lengstPagaaendeMillis));
+        }
+        if (kallerFeil > 0) {
+            problemer.add(String.format("%d kallere feilet med uventet exception", kallerFeil));
+        }
+        if (!hengendeTraader.isEmpty()) {
+            problemer.add("Krypteringsoppgaver hang etter at kallene var ferdige: " + String.join(", ", hengendeTraader));
+        }
+        if (!lekkedeTraader.isEmpty()) {
+            problemer.add("Nye ikke-daemon-tråder lever etter close(): " + String.join(", ", lekkedeTraader));
+        }
+        if (heapVekstBytes > maksHeapVekstMb * 1024 * 1024) {
+            problemer.add(String.format("Heap vokste %d MB, mer enn %d MB", heapVekstBytes / (1024 * 1024), maksHeapVekstMb));
+        }
+        if (!feilinjiseringAktiv() && timeouts.sum() + feil.sum() > 0) {
+            problemer.add(String.format("%d timeouts og %d feil uten feilinjisering", timeouts.sum(), feil.sum()));
+        }
+        problemer.forEach(problem -> log.warn("Problem: {}", problem));
+
+        return new SoakResultat(vellykkede.sum(), reaktiveKall.sum(), timeouts.sum(), feil.sum(), kallerFeil,
+                pagaaendeVedStopp, hengendeTraader, lekkedeTraader, heapVekstBytes, problemer);
+    }
+
+    private void kaller(List<DigisosKlient> klienter, long slutt) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < slutt && !Thread.currentThread().isInterrupted()) {
+            DigisosKlient klient = klienter.get(random.nextInt(klienter.size()));
+            boolean reaktiv = random.nextDouble() < reaktivAndel;
+            int antallFiler = 1 + random.nextInt(maksFilerPerKall);
+            List<FilMetadata> metadata = new ArrayList<>(antallFiler);
+            List<Integer> storrelser = new ArrayList<>(antallFiler);
+            long bytes = 0;
+            for (int i = 0; i < antallFiler; i++) {
+                int storrelse = velgFilStorrelse(random);
+                bytes += storrelse;
+                storrelser.add(storrelse);
+                metadata.add(new FilMetadata("soak-" + i + ".pdf", "application/pdf", (long) storrelse));
+            }
+
+            long kallId = kallTeller.incrementAndGet();
+            long kallStart = System.nanoTime();
+            pagaaendeKall.put(kallId, kallStart);
+            try {
+                if (reaktiv) {
+                    lastOppReaktivt(klient, metadata, storrelser);
+                    reaktiveKall.increment();
+                } else {
+                    List<FilOpplasting> filer = new ArrayList<>(antallFiler);
+                    for (int i = 0; i < antallFiler; i++) {
+                        filer.add(new FilOpplasting(metadata.get(i), new ByteArrayInputStream(data, 0, storrelser.get(i))));
+                    }
+                    klient.krypterOgLastOppFiler(filer, UUID.randomUUID(), UUID.randomUUID());
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - kallStart);
+                vellykketLatens.registrer(millis);
+                intervallLatens.get().registrer(millis);
+                vellykkede.increment();
+                bytesSendt.add(bytes);
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - kallStart);
+                feiletLatens.registrer(millis);
+                intervallLatens.get().registrer(millis);
+                if (erTimeout(e)) {
+                    timeouts.increment();
+                } else {
+                    feil.increment();
+                    log.debug("Kall feilet", e);
+                }
+            } finally {
+                pagaaendeKall.remove(kallId);
+            }
+        }
+    }
+
+    private void lastOppReaktivt(DigisosKlient klient, List<FilMetadata> metadata, List<Integer> storrelser) throws Exception {
+        List<ReaktivFilOpplasting> filer = new ArrayList<>(metadata.size());
+        for (int i = 0; i < metadata.size(); i++) {
+            filer.add(new ReaktivFilOpplasting(metadata.get(i), new ByteArrayPublisher(data, storrelser.get(i))));
+        }
+        CompletableFuture<?> future = klient.krypterOgLastOppReaktiveFiler(filer, UUID.randomUUID(), UUID.randomUUID());
+        try {
+            future.get(timeoutSeconds * 2, TimeUnit.SECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private boolean kallerFeilet(Future<?> kaller) {
+        if (!kaller.isDone()) {
+            return false;
+        }
+        try {
+            kaller.get();
+            return false;
+        } catch (ExecutionException e) {
+            log.error("Kaller feilet", e.getCause());
+            return true;
+        } catch (InterruptedException | CancellationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gir krypteringsoppgavene litt tid på å bli ferdige, og returnerer tråder som fortsatt er opptatt med kryptering
+     * eller venter på en pipe eller publisher. Sjekkes før close(), siden shutdownNow() avbryter trådene.
+     */
+    private List<String> ventPaaKrypteringsoppgaver(Set<Thread> traaderFoerStart) throws InterruptedException {
+        long frist = System.nanoTime() + TimeUnit.SECONDS.toNanos(etterslepSekunder);
+        List<String> hengende;
+        do {
+            hengende = Thread.getAllStackTraces().entrySet().stream()
+                    .filter(e -> !traaderFoerStart.contains(e.getKey()))
+                    .filter(e -> erOpptattMedKryptering(e.getValue()))
+                    .map(e -> e.getKey().getName() + " (" + forsteKrypteringsramme(e.getValue()) + ")")
+                    .collect(Collectors.toList());
+            if (hengende.isEmpty()) {
+                return hengende;
+            }
+            Thread.sleep(100);
+        } while (System.nanoTime() < frist);
+        return hengende;
+    }
+
+    private static boolean erOpptattMedKryptering(StackTraceElement[] stack) {
+        return forsteKrypteringsramme(stack) != null;
+    }
+
+    private static StackTraceElement forsteKrypteringsramme(StackTraceElement[] stack) {
+        for (StackTraceElement ramme : stack) {
+            boolean pipeSkriving = ramme.getClassName().equals("java.io.PipedOutputStream") && ramme.getMethodName().equals("write");
+            boolean kryptering = ramme.getMethodName().equals("krypterData");
+            boolean publisher = ramme.getClassName().equals(PublisherInputStream.class.getName());
+            if (pipeSkriving || kryptering || publisher) {
+                return ramme;
+            }
+        }
+        return null;
+    }
+
+    private List<String> ventPaaNyeTraader(Set<Thread> traaderFoerStart) throws InterruptedException {
+        long frist = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<String> nye;
+        do {
+            nye = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> !traaderFoerStart.contains(t))
+                    .filter(Thread::isAlive)
+                    .filter(t -> !t.isDaemon())
+                    .map(Thread::getName)
+                    .collect(Collectors.toList());
+            if (nye.isEmpty()) {
+                return nye;
+            }
+            Thread.sleep(100);
+        } while (System.nanoTime() < frist);
+        return nye;
+    }
+
+    private boolean feilinjiseringAktiv() {
+        return stoppSannsynlighet > 0 || bruddSannsynlighet > 0 || feilstatusSannsynlighet > 0;
+    }
+
+    private static boolean erTimeout(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof TimeoutException || t instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int velgFilStorrelse(ThreadLocalRandom random) {
+        int valg = random.nextInt(Arrays.stream(FIL_VEKTER).sum());
+        for (int i = 0; i < FIL_VEKTER.length; i++) {
+            valg -= FIL_VEKTER[i];
+            if (valg < 0) {
+                return 1 + random.nextInt(FIL_STORRELSER[i]);
+            }
+        }
+        return FIL_STORRELSER[0];
+    }
+
+    private void rapporterIntervall(long start) {
+        LatensHistogram intervall = intervallLatens.getAndSet(new LatensHistogram(maksLatensMillis));
+        log.info("{} s: {} vellykkede, {} timeouts, {} feil, {} pågående, {} tråder, heap {} MB, latens siste intervall {}",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                vellykkede.sum(), timeouts.sum(), feil.sum(), pagaaendeKall.size(),
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                memory.getHeapMemoryUsage().getUsed() / (1024 * 1024),
+                intervall.oppsummering());
+    }
+
+    private long heapEtterGc() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long lesLong(Properties konfigurasjon, String navn, long standard) {
+        String verdi = konfigurasjon.getProperty(navn);
+        return verdi == null ? standard : Long.parseLong(verdi);
+    }
+
+    private static double lesDouble(Properties konfigurasjon, String navn, double standard) {
+        String verdi = konfigurasjon.getProperty(navn);
+        return verdi == null ? standard : Double.parseDouble(verdi);
+    }
+
+    private static ThreadFactory traadFabrikk(String prefiks) {
+        AtomicInteger teller = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefiks + "-" + teller.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private HttpServer startStandInServer(ExecutorService executor) throws IOException {
+        byte[] sertifikat = DigisosKlientTest.PUBLIC_KEY.getBytes(StandardCharsets.US_ASCII);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/digisos/api/v1/dokumentlager-public-key", exchange -> svar(exchange, "application/x-pem-file", sertifikat));
+        server.createContext("/digisos/api/v1/", this::haandterOpplasting);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    private void haandterOpplasting(HttpExchange exchange) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            if (random.nextDouble() < stoppSannsynlighet) {
+                injiserteStopp.increment();
+                exchange.getRequestBody().readNBytes(random.nextInt(64 * 1024));
+                Thread.sleep(TimeUnit.SECONDS.toMillis(stoppSekunder));
+                exchange.close();
+                return;
+            }
+            if (random.nextDouble() < bruddSannsynlighet) {
+                injiserteBrudd.increment();
+                exchange.getRequestBody().readNBytes(random.nextInt(64 * 1024));
+                exchange.close();
+                return;
+            }
+            exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            if (svarForsinkelseMillis > 0) {
+                Thread.sleep(svarForsinkelseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+            return;
+        }
+        if (random.nextDouble() < feilstatusSannsynlighet) {
+            injiserteFeilstatuser.increment();
+            svar(exchange, 500, "application/json", "{\"message\":\"Injisert feil\"}".getBytes(StandardCharsets.UTF_8));
+        } else {
+            svar(exchange, "application/json", "[]".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void svar(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        svar(exchange, 200, contentType, body);
+    }
+
+    private static void svar(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    record SoakResultat(
+            long vellykkede,
+            long reaktiveKall,
+            long timeouts,
+            long feil,
+            long kallerFeil,
+            int pagaaendeVedStopp,
+            List<String> hengendeTraader,
+            List<String> lekkedeTraader,
+            long heapVekstBytes,
+            List<String> problemer
+    ) {
+    }
+
+    /**
+     * Publisher som leverer starten av et byte-array i biter etter hvert som de etterspørres.
+     */
+    private static class ByteArrayPublisher implements Flow.Publisher<ByteBuffer> {
+
+        private final byte[] data;
+        private final int lengde;
+
+        ByteArrayPublisher(byte[] data, int lengde) {
+            this.data = data;
+            this.lengde = lengde;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private int offset = 0;
+                private boolean ferdig = false;
+
+                @Override
+                public synchronized void request(long n) {
+                    for (long i = 0; i < n && !ferdig; i++) {
+                        if (offset >= lengde) {
+                            ferdig = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        int chunk = Math.min(CHUNK_STORRELSE, lengde - offset);
+                        ByteBuffer buffer = ByteBuffer.wrap(data, offset, chunk).asReadOnlyBuffer();
+                        offset += chunk;
+                        subscriber.onNext(buffer);
+                    }
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    ferdig = true;
+                }
+            });
+        }
+    }
+
+    private static class LatensHistogram {
+
+        private final AtomicLongArray buckets;
+
+        LatensHistogram(long maksMillis) {
+            buckets = new AtomicLongArray((int) maksMillis + 1);
+        }
+
+        void registrer(long millis) {
+            buckets.incrementAndGet((int) Math.min(millis, buckets.length() - 1));
+        }
+
+        String oppsummering() {
+            long antall = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                antall += buckets.get(i);
+            }
+            if (antall == 0) {
+                return "ingen kall";
+            }
+            return String.format("%d kall, p50=%d ms, p99=%d ms, p999=%d ms", antall, persentil(antall, 0.50), persentil(antall, 0.99), persentil(antall, 0.999));
+        }
+
+        private long persentil(long antall, double persentil) {
+            long grense = (long) Math.ceil(antall * persentil);
+            long sum = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                sum += buckets.get(i);
+                if (sum >= grense) {
+                    return i;
+                }
+            }
+            return buckets.length() - 1;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package no.ks.fiks.digisos.klient;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Tag("soak")
+@DisplayName("Test kort kjøring av soak-testen")
+public class DigisosKlientSoakTest {
+
+    @Test
+    @DisplayName("Test at en kort soak uten feilinjisering fullfører uten lekkasjer")
+    void kortSoakUtenFeil() throws Exception {
+        DigisosKlientSoak.SoakResultat resultat = new DigisosKlientSoak(kortKonfigurasjon()).kjor();
+
+        assertEquals(List.of(), resultat.problemer());
+        assertTrue(resultat.vellykkede() > 0);
+        assertTrue(resultat.reaktiveKall() > 0);
+        assertEquals(0, resultat.feil());
+        assertEquals(0, resultat.timeouts());
+    }
+
+    @Test
+    @DisplayName("Test at en kort soak med feilstatuser og brudd rydder opp etter seg")
+    void kortSoakMedFeilinjisering() throws Exception {
+        Properties konfigurasjon = kortKonfigurasjon();
+        konfigurasjon.setProperty("soak.feilstatusSannsynlighet", "0.2");
+        konfigurasjon.setProperty("soak.bruddSannsynlighet", "0.1");
+
+        DigisosKlientSoak.SoakResultat resultat = new DigisosKlientSoak(konfigurasjon).kjor();
+
+        assertEquals(List.of(), resultat.problemer());
+        assertTrue(resultat.feil() + resultat.timeouts() > 0);
+    }
+
+    private static Properties kortKonfigurasjon() {
+        Properties konfigurasjon = new Properties();
+        konfigurasjon.setProperty("soak.klienter", "2");
+        konfigurasjon.setProperty("soak.kallere", "4");
+        konfigurasjon.setProperty("soak.varighetSekunder", "3");
+        konfigurasjon.setProperty("soak.rapportIntervallSekunder", "1");
+        konfigurasjon.setProperty("soak.timeoutSeconds", "10");
+        konfigurasjon.setProperty("soak.reaktivAndel", "0.5");
+        return konfigurasjon;
+    }
+}
@@ -3,6 +3,7 @@ package no.ks.fiks.digisos.klient;
 import no.ks.fiks.digisos.klient.model.DokumentInfo;
 import no.ks.fiks.digisos.klient.model.FilMetadata;
 import no.ks.fiks.digisos.klient.model.FilOpplasting;
+import no.ks.fiks.digisos.klient.model.ReaktivFilOpplasting;
 import no.ks.fiks.streaming.klient.KlientResponse;
 import no.ks.kryptering.CMSKrypteringImpl;
 import no.ks.kryptering.CMSStreamKryptering;
@@ -16,6 +17,9 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
@@ -23,7 +27,10 @@ import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.*;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static java.util.Arrays.asList;
@@ -36,7 +43,7 @@ import static org.mockito.Mockito.*;
 @DisplayName("Test DigisosKlient")
 public class DigisosKlientTest {
 
-    private static final String PUBLIC_KEY =
+    static final String PUBLIC_KEY =
             """
                     -----BEGIN CERTIFICATE-----
                     MIIEIDCCAwigAwIBAgIJAOfdsbcJ9VCaMA0GCSqGSIb3DQEBCwUAMIGjMQswCQYD
@@ -346,6 +353,163 @@ public class DigisosKlientTest {
         assertEquals(TimeoutException.class, timeoutException.getCause().getClass());
     }
 
+    @Test
+    @DisplayName("Test at oppvarming henter sertifikat som gjenbrukes ved opplasting")
+    void oppvarmingHenterOgCacherSertifikat() {
+
+        X509Certificate sertifikat = getX509Certificate();
+        when(digisosApi.getDokumentlagerPublicKeyX509Certificate()).thenReturn(sertifikat);
+
+        byte[] data = new byte[1024];
+        new Random().nextBytes(data);
+        FilMetadata metadata = new FilMetadata(
+                "small.pdf",
+                "application/pdf",
+                Integer.toUnsignedLong(data.length)
+        );
+        FilOpplasting filOpplasting = new FilOpplasting(metadata, new ByteArrayInputStream(data));
+
+        when(digisosApi.lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class))).then(assertingAnswerForDigisosApi(singletonList(data)));
+
+        CMSStreamKryptering krypteringSpy = spy(new CMSKrypteringImpl());
+        try (DigisosKlient digisosKlient = DigisosKlient.builder().digisosApi(digisosApi).kryptering(krypteringSpy).build()) {
+            digisosKlient.warmUp();
+            verify(krypteringSpy, times(3)).krypterData(any(), any(), eq(sertifikat), any());
+
+            digisosKlient.krypterOgLastOppFiler(singletonList(filOpplasting), UUID.randomUUID(), UUID.randomUUID());
+        }
+        verify(digisosApi, times(1)).getDokumentlagerPublicKeyX509Certificate();
+        verify(digisosApi).lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class));
+    }
+
+    @Test
+    @DisplayName("Test at dokument fra publisher blir kryptert uten at produsenten kommer foran")
+    void krypteringOgOpplastingFraPublisher() throws Exception {
+
+        when(digisosApi.getDokumentlagerPublicKeyX509Certificate()).thenReturn(getX509Certificate());
+        byte[] data = new byte[1024 * 1024 * 5];
+        new Random().nextBytes(data);
+
+        FilMetadata metadata = new FilMetadata(
+                "small.pdf",
+                "application/pdf",
+                Integer.toUnsignedLong(data.length)
+        );
+
+        AtomicLong maksUtestaaende = new AtomicLong();
+        ReaktivFilOpplasting filOpplasting = new ReaktivFilOpplasting(metadata, chunkedPublisher(data, 8 * 1024, maksUtestaaende));
+
+        when(digisosApi.lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class))).then(assertingAnswerForDigisosApi(singletonList(data)));
+
+        try (DigisosKlient digisosKlient = DigisosKlient.builder().digisosApi(digisosApi).build()) {
+            KlientResponse<List<DokumentInfo>> response = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(filOpplasting), UUID.randomUUID(), UUID.randomUUID()).get();
+            assertEquals(1, response.result().size());
+        }
+        assertEquals(1, maksUtestaaende.get());
+        verify(digisosApi).lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class));
+    }
+
+    @Test
+    @DisplayName("Test at kansellering av reaktiv opplasting kansellerer abonnementet på publisheren")
+    void kanselleringAvReaktivOpplasting() throws Exception {
+
+        when(digisosApi.getDokumentlagerPublicKeyX509Certificate()).thenReturn(getX509Certificate());
+        when(digisosApi.lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class))).then(drenerendeAnswerForDigisosApi());
+
+        StyrtPublisher publisher = StyrtPublisher.stopperEtter(1);
+        ReaktivFilOpplasting filOpplasting = new ReaktivFilOpplasting(new FilMetadata("small.pdf", "application/pdf", 123L), publisher);
+
+        try (DigisosKlient digisosKlient = DigisosKlient.builder().digisosApi(digisosApi).build()) {
+            CompletableFuture<KlientResponse<List<DokumentInfo>>> future = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(filOpplasting), UUID.randomUUID(), UUID.randomUUID());
+            assertTrue(publisher.abonnert.await(5, TimeUnit.SECONDS));
+
+            assertTrue(future.cancel(true));
+            assertTrue(publisher.kansellert.await(5, TimeUnit.SECONDS));
+            verify(digisosApi, timeout(5000)).lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class));
+        }
+    }
+
+    @Test
+    @DisplayName("Test at close() fullfører reaktive opplastinger som kjører eller venter i kø")
+    void closeFullforerReaktiveOpplastinger() throws Exception {
+
+        when(digisosApi.getDokumentlagerPublicKeyX509Certificate()).thenReturn(getX509Certificate());
+        when(digisosApi.lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class))).then(drenerendeAnswerForDigisosApi());
+
+        StyrtPublisher kjorende = StyrtPublisher.stopperEtter(1);
+        StyrtPublisher iKo = StyrtPublisher.stopperEtter(1);
+        FilMetadata metadata = new FilMetadata("small.pdf", "application/pdf", 123L);
+
+        DigisosKlient digisosKlient = DigisosKlient.builder().digisosApi(digisosApi).antallOpplastingThreads(1).build();
+        CompletableFuture<KlientResponse<List<DokumentInfo>>> kjorendeFuture = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(new ReaktivFilOpplasting(metadata, kjorende)), UUID.randomUUID(), UUID.randomUUID());
+        CompletableFuture<KlientResponse<List<DokumentInfo>>> iKoFuture = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(new ReaktivFilOpplasting(metadata, iKo)), UUID.randomUUID(), UUID.randomUUID());
+        assertTrue(kjorende.abonnert.await(5, TimeUnit.SECONDS));
+
+        digisosKlient.close();
+
+        assertThrows(CancellationException.class, () -> kjorendeFuture.get(5, TimeUnit.SECONDS));
+        assertThrows(CancellationException.class, () -> iKoFuture.get(5, TimeUnit.SECONDS));
+        assertTrue(kjorende.kansellert.await(5, TimeUnit.SECONDS));
+        assertEquals(1, iKo.abonnert.getCount());
+
+        CompletableFuture<KlientResponse<List<DokumentInfo>>> etterClose = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(new ReaktivFilOpplasting(metadata, StyrtPublisher.stopperEtter(1))), UUID.randomUUID(), UUID.randomUUID());
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> etterClose.get(5, TimeUnit.SECONDS));
+        assertEquals(IllegalStateException.class, exception.getCause().getClass());
+        verify(digisosApi, timeout(5000)).lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class));
+    }
+
+    @Test
+    @DisplayName("Dersom publisheren feiler skal future fullføres med exception")
+    void publisherFeilerGirExceptionellFuture() {
+
+        when(digisosApi.getDokumentlagerPublicKeyX509Certificate()).thenReturn(getX509Certificate());
+
+        AtomicReference<IOException> lesefeil = new AtomicReference<>();
+        when(digisosApi.lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class))).then(a -> {
+            final List<FilOpplasting> filer = a.getArgument(0);
+            try {
+                IOUtils.toByteArray(filer.get(0).data());
+            } catch (IOException e) {
+                lesefeil.set(e);
+                throw new UncheckedIOException(e);
+            }
+            fail("Opplastingen skal ikke se slutten på en avkuttet strøm");
+            return null;
+        });
+
+        StyrtPublisher publisher = StyrtPublisher.feilerEtter(1, new RuntimeException("Generering feilet"));
+        ReaktivFilOpplasting filOpplasting = new ReaktivFilOpplasting(new FilMetadata("small.pdf", "application/pdf", 123L), publisher);
+
+        try (DigisosKlient digisosKlient = DigisosKlient.builder().digisosApi(digisosApi).build()) {
+            CompletableFuture<KlientResponse<List<DokumentInfo>>> future = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(filOpplasting), UUID.randomUUID(), UUID.randomUUID());
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+            assertEquals(UncheckedIOException.class, exception.getCause().getClass());
+            assertEquals("Kryptering feilet", lesefeil.get().getMessage());
+        }
+    }
+
+    @Test
+    @DisplayName("Dersom opplasting feiler skal abonnementet på publisheren kanselleres")
+    void opplastingFeilerKansellererPublisher() throws Exception {
+
+        when(digisosApi.getDokumentlagerPublicKeyX509Certificate()).thenReturn(getX509Certificate());
+
+        StyrtPublisher publisher = StyrtPublisher.stopperEtter(1);
+        ReaktivFilOpplasting filOpplasting = new ReaktivFilOpplasting(new FilMetadata("small.pdf", "application/pdf", 123L), publisher);
+
+        when(digisosApi.lastOppFiler(anyList(), isA(UUID.class), isA(UUID.class))).then(a -> {
+            assertTrue(publisher.abonnert.await(5, TimeUnit.SECONDS));
+            throw new RuntimeException("Opplasting feilet");
+        });
+
+        try (DigisosKlient digisosKlient = DigisosKlient.builder().digisosApi(digisosApi).build()) {
+            CompletableFuture<KlientResponse<List<DokumentInfo>>> future = digisosKlient.krypterOgLastOppReaktiveFiler(singletonList(filOpplasting), UUID.randomUUID(), UUID.randomUUID());
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+            assertEquals("Opplasting feilet", exception.getCause().getMessage());
+            assertTrue(publisher.kansellert.await(5, TimeUnit.SECONDS));
+        }
+    }
+
     @Test
     @DisplayName("Test opprettelse av DigisosKlientBuilder med feile verdier kaster exception")
     void testFeilInputTilBuilder() {
@@ -371,9 +535,61 @@ public class DigisosKlientTest {
                 .build());
         assertEquals("Må ha minumum 1 tråd for kryptering", illegalNumThreadsException.getMessage());
 
+        IllegalArgumentException illegalNumOpplastingThreadsException = assertThrows(IllegalArgumentException.class, () -> DigisosKlient.builder()
+                .digisosApi(digisosApi)
+                .antallOpplastingThreads(0)
+                .build());
+        assertEquals("Må ha minumum 1 tråd for opplasting", illegalNumOpplastingThreadsException.getMessage());
+
         verifyNoInteractions(digisosApi);
     }
 
+    private Flow.Publisher<ByteBuffer> chunkedPublisher(final byte[] data, final int chunkSize, final AtomicLong maksUtestaaende) {
+        return subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+            private final AtomicLong utestaaende = new AtomicLong();
+            private final AtomicBoolean ferdig = new AtomicBoolean();
+            private int offset = 0;
+
+            @Override
+            public void request(long n) {
+                maksUtestaaende.accumulateAndGet(utestaaende.addAndGet(n), Math::max);
+                while (utestaaende.get() > 0 && !ferdig.get()) {
+                    if (offset >= data.length) {
+                        ferdig.set(true);
+                        subscriber.onComplete();
+                        return;
+                    }
+                    int length = Math.min(chunkSize, data.length - offset);
+                    ByteBuffer chunk = ByteBuffer.wrap(data, offset, length);
+                    offset += length;
+                    utestaaende.decrementAndGet();
+                    subscriber.onNext(chunk);
+                }
+            }
+
+            @Override
+            public void cancel() {
+                ferdig.set(true);
+            }
+        });
+    }
+
+    private Answer<KlientResponse<List<DokumentInfo>>> drenerendeAnswerForDigisosApi() {
+        return a -> {
+            final List<FilOpplasting> filer = a.getArgument(0);
+            for (FilOpplasting fil : filer) {
+                IOUtils.toByteArray(fil.data());
+            }
+            return new KlientResponse<>(
+                    filer.stream()
+                            .map(f -> new DokumentInfo(f.metadata().filnavn(), UUID.randomUUID(), f.metadata().storrelse()))
+                            .collect(Collectors.toList()),
+                    HttpStatus.OK_200,
+                    null
+            );
+        };
+    }
+
     private Answer<KlientResponse<List<DokumentInfo>>> assertingAnswerForDigisosApi(final List<byte[]> ukrypterteFiler) {
         return a -> {
             final List<FilOpplasting> filer = a.getArgument(0);
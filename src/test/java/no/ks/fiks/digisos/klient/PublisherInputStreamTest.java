@@ -0,0 +1,155 @@
+package no.ks.fiks.digisos.klient;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Test PublisherInputStream")
+public class PublisherInputStreamTest {
+
+    @Test
+    @DisplayName("Test at publisheren ikke abonneres på dersom streamen lukkes før den leses")
+    void lukketStreamAbonnererIkkePaaPublisher() {
+        StyrtPublisher publisher = StyrtPublisher.stopperEtter(1);
+        PublisherInputStream inputStream = new PublisherInputStream(publisher, 1);
+
+        inputStream.close();
+
+        assertThrows(IOException.class, inputStream::read);
+        assertEquals(1, publisher.abonnert.getCount());
+    }
+
+    @Test
+    @DisplayName("Test at lesing gir timeout og kansellerer abonnementet når publisheren ikke leverer data")
+    void publisherGirTimeout() {
+        StyrtPublisher publisher = StyrtPublisher.stopperEtter(0);
+        PublisherInputStream inputStream = new PublisherInputStream(publisher, 1);
+
+        assertThrows(InterruptedIOException.class, inputStream::read);
+        assertEquals(0, publisher.kansellert.getCount());
+    }
+
+    @Test
+    @DisplayName("Test at tomme ByteBuffere hoppes over uten at read returnerer 0")
+    void tommeBuffereHoppesOver() throws Exception {
+        ListePublisher publisher = new ListePublisher(asList(
+                ByteBuffer.allocate(0),
+                ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.allocate(0),
+                ByteBuffer.allocate(0),
+                ByteBuffer.wrap("def".getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.allocate(0)
+        ), false);
+
+        ByteArrayOutputStream lest = new ByteArrayOutputStream();
+        try (PublisherInputStream inputStream = new PublisherInputStream(publisher, 5)) {
+            byte[] buffer = new byte[16];
+            int n;
+            while ((n = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                assertNotEquals(0, n);
+                lest.write(buffer, 0, n);
+            }
+        }
+        assertEquals("abcdef", lest.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Test at data leses når publisheren kaller onSubscribe fra en annen tråd")
+    void onSubscribeFraAnnenTraad() throws Exception {
+        byte[] data = new byte[1024 * 100];
+        new Random().nextBytes(data);
+        List<ByteBuffer> elementer = new ArrayList<>();
+        for (int i = 0; i < data.length; i += 1024) {
+            elementer.add(ByteBuffer.wrap(data, i, 1024));
+        }
+
+        try (PublisherInputStream inputStream = new PublisherInputStream(new ListePublisher(elementer, true), 5)) {
+            assertArrayEquals(data, inputStream.readAllBytes());
+        }
+    }
+
+    @Test
+    @DisplayName("Test at close() som kappløper med første lesing vekker leseren og kansellerer et eventuelt abonnement")
+    void closeKapploperMedForsteLesing() throws Exception {
+        ExecutorService leser = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 200; i++) {
+                StyrtPublisher publisher = StyrtPublisher.stopperEtter(0);
+                PublisherInputStream inputStream = new PublisherInputStream(publisher, 30);
+                CountDownLatch start = new CountDownLatch(1);
+
+                Future<Integer> lesing = leser.submit(() -> {
+                    start.await();
+                    return inputStream.read();
+                });
+                start.countDown();
+                inputStream.close();
+
+                ExecutionException exception = assertThrows(ExecutionException.class, () -> lesing.get(5, TimeUnit.SECONDS));
+                assertEquals(IOException.class, exception.getCause().getClass());
+                if (publisher.abonnert.getCount() == 0) {
+                    assertEquals(0, publisher.kansellert.getCount());
+                }
+            }
+        } finally {
+            leser.shutdownNow();
+        }
+    }
+
+    /**
+     * Publisher som leverer en gitt liste med elementer etter hvert som de etterspørres, og deretter fullfører.
+     */
+    private static class ListePublisher implements Flow.Publisher<ByteBuffer> {
+
+        private final List<ByteBuffer> elementer;
+        private final boolean asynkronOnSubscribe;
+
+        ListePublisher(List<ByteBuffer> elementer, boolean asynkronOnSubscribe) {
+            this.elementer = elementer;
+            this.asynkronOnSubscribe = asynkronOnSubscribe;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            Flow.Subscription subscription = new Flow.Subscription() {
+                private final Iterator<ByteBuffer> iterator = elementer.iterator();
+                private boolean ferdig = false;
+
+                @Override
+                public synchronized void request(long n) {
+                    for (long i = 0; i < n && !ferdig; i++) {
+                        if (iterator.hasNext()) {
+                            subscriber.onNext(iterator.next());
+                        } else {
+                            ferdig = true;
+                            subscriber.onComplete();
+                        }
+                    }
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    ferdig = true;
+                }
+            };
+            if (asynkronOnSubscribe) {
+                new Thread(() -> subscriber.onSubscribe(subscription)).start();
+            } else {
+                subscriber.onSubscribe(subscription);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package no.ks.fiks.digisos.klient;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+/**
+ * Publisher som leverer et gitt antall elementer, og deretter enten stopper opp uten å signalisere noe mer
+ * eller feiler.
+ */
+class StyrtPublisher implements Flow.Publisher<ByteBuffer> {
+
+    final CountDownLatch abonnert = new CountDownLatch(1);
+    final CountDownLatch kansellert = new CountDownLatch(1);
+    private final int antallElementer;
+    private final Throwable feil;
+
+    private StyrtPublisher(int antallElementer, Throwable feil) {
+        this.antallElementer = antallElementer;
+        this.feil = feil;
+    }
+
+    static StyrtPublisher stopperEtter(int antallElementer) {
+        return new StyrtPublisher(antallElementer, null);
+    }
+
+    static StyrtPublisher feilerEtter(int antallElementer, Throwable feil) {
+        return new StyrtPublisher(antallElementer, feil);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            private int levert = 0;
+            private boolean ferdig = false;
+
+            @Override
+            public synchronized void request(long n) {
+                for (long i = 0; i < n && !ferdig; i++) {
+                    if (levert < antallElementer) {
+                        levert++;
+                        byte[] data = new byte[1024];
+                        new Random().nextBytes(data);
+                        subscriber.onNext(ByteBuffer.wrap(data));
+                    } else {
+                        if (feil != null) {
+                            ferdig = true;
+                            subscriber.onError(feil);
+                        }
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public void cancel() {
+                kansellert.countDown();
+            }
+        });
+        abonnert.countDown();
+    }
+}